@@ -0,0 +1,74 @@
+/**
+ * Alipay.com Inc.
+ * Copyright (c) 2004-2023 All Rights Reserved
+ */
+package org.my;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A simple pool of direct byte buffers grouped by capacity.
+ * TLS records are wrapped and unwrapped into buffers taken from here, so a reconnecting
+ * user does not allocate a new set of network buffers for every handshake
+ * @author MY_c
+ * @version $Id: BufferPool.java, v 0.1 2026-10-19-10:12 am
+ */
+public class BufferPool {
+
+    /*** The shared pool **/
+    private static final BufferPool INSTANCE = new BufferPool();
+
+    /*** Maximum idle buffers kept for each capacity **/
+    private static final int MAX_IDLE_PER_SIZE = 64;
+
+    /*** Idle buffers grouped by capacity **/
+    private final Map<Integer, Queue<ByteBuffer>> idleBuffers = new ConcurrentHashMap<>();
+
+    public static BufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /***
+     * Take a cleared buffer of the given capacity from the pool, allocate one if the pool is empty
+     * @param capacity buffer capacity
+     * @return a cleared buffer
+     * @throws IOException Direct buffer memory is exhausted, only the connection asking for it should fail
+     */
+    public ByteBuffer acquire(int capacity) throws IOException {
+        ByteBuffer buffer = getQueue(capacity).poll();
+        if (buffer == null) {
+            try {
+                return ByteBuffer.allocateDirect(capacity);
+            } catch (OutOfMemoryError e) {
+                throw new IOException("Direct buffer memory exhausted", e);
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /***
+     * Give a buffer back to the pool
+     * @param buffer buffer to be reused
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        Queue<ByteBuffer> queue = getQueue(buffer.capacity());
+        // Not strictly bounded under contention, which is fine for a pool
+        if (queue.size() < MAX_IDLE_PER_SIZE) {
+            buffer.clear();
+            queue.offer(buffer);
+        }
+    }
+
+    private Queue<ByteBuffer> getQueue(int capacity) {
+        return this.idleBuffers.computeIfAbsent(capacity, c -> new ConcurrentLinkedQueue<>());
+    }
+}
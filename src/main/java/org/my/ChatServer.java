@@ -4,10 +4,12 @@
  */
 package org.my;
 
+import javax.net.ssl.SSLContext;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -34,12 +36,27 @@ public class ChatServer {
     /*** The map maintains user and channel relationship **/
     private final Map<UserInfo, SocketChannel> usersMap = new ConcurrentHashMap<>();
 
+    /*** The map maintains socket channel and TLS channel relationship, empty if TLS is not enabled **/
+    private final Map<SocketChannel, TlsChannel> tlsChannels = new ConcurrentHashMap<>();
+
+    /*** Messages not fully written to users yet, sent when their channels become writable **/
+    private final Map<SocketChannel, Queue<ByteBuffer>> pendingMessages = new ConcurrentHashMap<>();
+
+    /*** SSL context, null if TLS is not enabled **/
+    private final SSLContext sslContext;
+
     /*** Buffer size **/
     private static final int BUFFER_SIZE = 1024;
 
     /*** Server port **/
     private static final int SERVER_PORT = 8088;
 
+    /*** Time allowed for a TLS handshake, a peer that never finishes it is disconnected **/
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 10 * 1000;
+
+    /*** Longest wait in select, so expired handshakes are found on an idle server **/
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
 
     public static void main(String[] args) {
         new ChatServer(SERVER_PORT).start();
@@ -48,6 +65,7 @@ public class ChatServer {
     public ChatServer(int port){
         try{
             this.port = port;
+            this.sslContext = TlsContextFactory.isServerTlsEnabled() ? TlsContextFactory.getServerContext() : null;
             this.selector = Selector.open();
             this.serverChannel = ServerSocketChannel.open();
             this.serverChannel.configureBlocking(false);
@@ -64,7 +82,7 @@ public class ChatServer {
         try {
             this.serverChannel.socket().bind(new InetSocketAddress(this.port));
             this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
-            System.out.println("The chatroom server has started");
+            System.out.println("The chatroom server has started" + (Objects.nonNull(this.sslContext) ? " with TLS" : ""));
             processIncomingMessage();
         } catch (IOException | ClassNotFoundException e) {
             throw new RuntimeException(e);
@@ -79,25 +97,41 @@ public class ChatServer {
     private void processIncomingMessage() throws IOException, ClassNotFoundException {
         while(true){
             try{
-                if(this.selector.select() > 0){
+                if(this.selector.select(SELECT_TIMEOUT_MILLIS) > 0){
                     Iterator<SelectionKey> itr = this.selector.selectedKeys().iterator();
                     while(itr.hasNext()){
                         SelectionKey key = itr.next();
                         itr.remove();
+                        // The connection may have been closed while processing other keys
+                        if(!key.isValid()){
+                            continue;
+                        }
                         if(key.isAcceptable()){
                             processUserConnection(key);
+                            continue;
                         }
-                        else if(key.isReadable()){
-                            processMessage(key);
-                        }
-                        else if(key.isWritable()){
-                            processResendMessage(key);
+                        // A broken or malicious peer only closes its own connection
+                        try{
+                            if(isHandshaking(key)){
+                                processHandshake(key);
+                            }
+                            else if(key.isReadable()){
+                                processMessage(key);
+                            }
+                            else if(key.isWritable()){
+                                processResendMessage(key);
+                            }
+                            else{
+                                throw new IllegalStateException("Illegal interest set: " + key.interestOps());
+                            }
                         }
-                        else{
-                            throw new IllegalStateException("Illegal interest set: " + key.interestOps());
+                        catch (IOException | ClassNotFoundException ex){
+                            System.out.println("Close user connection: " + ex);
+                            closeUserConnection((SocketChannel) key.channel());
                         }
                     }
                 }
+                closeExpiredHandshakes();
             }
             catch (Exception ex){
                 throw new RuntimeException(ex);
@@ -115,7 +149,49 @@ public class ChatServer {
         if(Objects.nonNull(clientChannel)){
             System.out.println("A new user is trying to join: " + clientChannel.getRemoteAddress());
             clientChannel.configureBlocking(false);
-            clientChannel.register(this.selector, SelectionKey.OP_READ);
+            if(Objects.isNull(this.sslContext)){
+                clientChannel.register(this.selector, SelectionKey.OP_READ);
+                return;
+            }
+            TlsChannel tlsChannel;
+            try{
+                tlsChannel = TlsChannel.server(clientChannel, this.sslContext);
+            }
+            catch (IOException ex){
+                // e.g. no direct memory left for TLS buffers, refuse this user only
+                System.out.println("Close user connection: " + ex);
+                clientChannel.close();
+                return;
+            }
+            this.tlsChannels.put(clientChannel, tlsChannel);
+            tlsChannel.register(this.selector, SelectionKey.OP_READ);
+        }
+    }
+
+    /***
+     * Close connections whose TLS handshake has not completed in time
+     */
+    private void closeExpiredHandshakes(){
+        for(Map.Entry<SocketChannel, TlsChannel> entry: this.tlsChannels.entrySet()){
+            if(entry.getValue().isHandshakeExpired(HANDSHAKE_TIMEOUT_MILLIS)){
+                System.out.println("Close user connection: TLS handshake timed out");
+                closeUserConnection(entry.getKey());
+            }
+        }
+    }
+
+    /***
+     * Continue the TLS handshake of a new user connection
+     * @param key The selection key
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void processHandshake(SelectionKey key) throws IOException, ClassNotFoundException {
+        TlsChannel tlsChannel = this.tlsChannels.get(key.channel());
+        // The client may send its registration message right after its last handshake message,
+        // it has been read into TLS buffer already and the selector will not report it again
+        if(tlsChannel.handshake() && tlsChannel.hasBufferedInput()){
+            processMessage(key);
         }
     }
 
@@ -128,7 +204,16 @@ public class ChatServer {
     private void processMessage(SelectionKey key) throws IOException, ClassNotFoundException {
         SocketChannel clientChannel = (SocketChannel) key.channel();
         ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-        ByteArrayOutputStream outputStream = MessageUtils.readMessageFromChannel(clientChannel, BUFFER_SIZE);
+        ByteArrayOutputStream outputStream = MessageUtils.readMessageFromChannel(transportOf(clientChannel), BUFFER_SIZE);
+        // The user has left
+        if(Objects.isNull(outputStream)){
+            closeUserConnection(clientChannel);
+            return;
+        }
+        // Records such as TLS session tickets carry no message
+        if(outputStream.size() == 0){
+            return;
+        }
         Message message = MessageUtils.deserializeMessage(outputStream);
         if(Objects.isNull(message)){
             return;
@@ -146,16 +231,19 @@ public class ChatServer {
 
     private void processResendMessage(SelectionKey key) throws IOException {
         SocketChannel clientChannel = (SocketChannel) key.channel();
-        Message message = (Message) key.attachment();
-        if(Objects.isNull(message)){
+        TlsChannel tlsChannel = this.tlsChannels.get(clientChannel);
+        // Encrypted bytes left from the last write must be sent first
+        if(Objects.nonNull(tlsChannel) && !tlsChannel.flush()){
             return;
         }
-        byte[] messageBytes = MessageUtils.serialize(message);
-        ByteBuffer msgBuffer = ByteBuffer.wrap(messageBytes);
-        clientChannel.write(msgBuffer);
-        // remove the OP_WRITE
-        int op = key.interestOps() - SelectionKey.OP_WRITE;
-        key.interestOps(op);
+        if(!writePendingMessages(clientChannel)){
+            return;
+        }
+        // remove the OP_WRITE unless part of a TLS record is still waiting for the socket
+        if(Objects.isNull(tlsChannel) || !tlsChannel.hasPendingOutput()){
+            int op = key.interestOps() & ~SelectionKey.OP_WRITE;
+            key.interestOps(op);
+        }
     }
 
     /***
@@ -190,25 +278,100 @@ public class ChatServer {
             usersToSend.add(entry.getValue());
         }
         byte[] messageBytes = MessageUtils.serialize(message);
-        ByteBuffer msgBuffer = ByteBuffer.wrap(messageBytes);
         for(SocketChannel channel: usersToSend){
-            int size = channel.write(msgBuffer);
-            if(size == 0){
-                // The socket buffer is full, register OP_WRITE and resend later
-                channel.register(this.selector, SelectionKey.OP_WRITE + SelectionKey.OP_READ, message);
+            try{
+                doMessageSend(channel, messageBytes);
+            }
+            catch (IOException ex){
+                // The receiver has gone, it should not stop the message to others
+                closeUserConnection(channel);
             }
         }
     }
 
     /***
-     *
+     * Queue the message after earlier unsent ones of the channel and write as much as the socket takes
      * @param channel
      * @param messageBytes
      * @throws IOException
      */
     private void doMessageSend(SocketChannel channel, byte[] messageBytes) throws IOException {
         ByteBuffer buffer = ByteBuffer.wrap(messageBytes);
-        channel.write(buffer);
+        this.pendingMessages.computeIfAbsent(channel, c -> new ArrayDeque<>()).add(buffer);
+        writePendingMessages(channel);
+    }
+
+    /***
+     * Write queued messages in order. A message is dropped from the queue only when all its bytes have been
+     * taken by the channel, otherwise OP_WRITE is registered and the rest is written later
+     * @param channel The socket channel of user
+     * @return true if all queued messages have been written
+     * @throws IOException
+     */
+    private boolean writePendingMessages(SocketChannel channel) throws IOException {
+        Queue<ByteBuffer> queue = this.pendingMessages.get(channel);
+        if(Objects.isNull(queue)){
+            return true;
+        }
+        ByteChannel transport = transportOf(channel);
+        while(!queue.isEmpty()){
+            ByteBuffer buffer = queue.peek();
+            transport.write(buffer);
+            if(buffer.hasRemaining()){
+                // The socket buffer is full, register OP_WRITE and resend later
+                SelectionKey key = channel.keyFor(this.selector);
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return false;
+            }
+            queue.poll();
+        }
+        return true;
+    }
+
+    /***
+     * Close the connection of a user who has left or failed, and forget the user and its TLS channel.
+     * Closing the TLS channel sends close_notify and gives its buffers back to the pool
+     * @param clientChannel The socket channel of user
+     */
+    private void closeUserConnection(SocketChannel clientChannel){
+        SelectionKey key = clientChannel.keyFor(this.selector);
+        if(Objects.nonNull(key)){
+            key.cancel();
+        }
+        this.usersMap.values().removeIf(channel -> channel == clientChannel);
+        this.pendingMessages.remove(clientChannel);
+        TlsChannel tlsChannel = this.tlsChannels.remove(clientChannel);
+        try{
+            if(Objects.nonNull(tlsChannel)){
+                tlsChannel.close();
+            }
+            else{
+                clientChannel.close();
+            }
+        }
+        catch (IOException ex){
+            System.out.println("Failed to close user connection: " + ex);
+        }
+    }
+
+    /***
+     * Get the channel to read and write plain message bytes
+     * @param channel The socket channel of user
+     * @return the TLS channel if TLS is enabled, otherwise the socket channel itself
+     */
+    private ByteChannel transportOf(SocketChannel channel){
+        TlsChannel tlsChannel = this.tlsChannels.get(channel);
+        return Objects.isNull(tlsChannel) ? channel : tlsChannel;
+    }
+
+    /***
+     * Check if the TLS handshake of the channel has not completed yet
+     * @param key The selection key
+     * @return true if the handshake is in progress
+     */
+    private boolean isHandshaking(SelectionKey key){
+        TlsChannel tlsChannel = this.tlsChannels.get(key.channel());
+        return Objects.nonNull(tlsChannel) && !tlsChannel.isHandshakeComplete();
     }
 
     /***
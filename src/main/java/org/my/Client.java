@@ -10,10 +10,14 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Iterator;
+import java.util.Objects;
+import java.util.Queue;
 
 /**
  * The client server
@@ -28,6 +32,12 @@ public class Client {
     /*** Client channel **/
     private SocketChannel       serverChannel;
 
+    /*** TLS channel on top of client channel, null if TLS is not enabled **/
+    private TlsChannel          tlsChannel;
+
+    /*** Messages not fully written yet, guarded by itself since input and receiving threads both write **/
+    private final Queue<ByteBuffer> pendingMessages = new ArrayDeque<>();
+
     /*** Selector **/
     private Selector            selector;
 
@@ -66,10 +76,16 @@ public class Client {
         try {
             // Send a registration message to chatroom server if client has not done that yet
             if (this.serverChannel.isConnected()) {
-                this.serverChannel.register(this.selector, SelectionKey.OP_READ);
+                if (Objects.isNull(this.tlsChannel)) {
+                    this.serverChannel.register(this.selector, SelectionKey.OP_READ);
+                }
+                completeHandshake();
                 sendRegisterMessage();
             }
-            this.serverChannel.register(this.selector, SelectionKey.OP_READ);
+            // Keep the interest set of a registered channel, it may be waiting for OP_WRITE
+            if (Objects.isNull(this.serverChannel.keyFor(this.selector))) {
+                this.serverChannel.register(this.selector, SelectionKey.OP_READ);
+            }
             getMessageReceivingTask().start();
             runMessageSendingTask();
         } catch (Exception e) {
@@ -86,11 +102,39 @@ public class Client {
                 .open(new InetSocketAddress(SERVER_HOST, SERVER_PORT));
             this.serverChannel.configureBlocking(false);
             this.selector = Selector.open();
+            if (TlsContextFactory.isClientTlsEnabled()) {
+                this.tlsChannel = TlsChannel.client(this.serverChannel, TlsContextFactory.getClientContext(),
+                    SERVER_HOST, SERVER_PORT);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /***
+     * Run the TLS handshake with chatroom server before any message is sent.
+     * The handshake itself is non-blocking, wait on the selector until it is complete
+     * @throws IOException Errors from handshake
+     */
+    private void completeHandshake() throws IOException {
+        if (Objects.isNull(this.tlsChannel)) {
+            return;
+        }
+        this.tlsChannel.register(this.selector, SelectionKey.OP_READ);
+        while (!this.tlsChannel.handshake()) {
+            this.selector.select();
+            this.selector.selectedKeys().clear();
+        }
+    }
+
+    /***
+     * Get the channel to read and write plain message bytes
+     * @return the TLS channel if TLS is enabled, otherwise the client channel itself
+     */
+    private ByteChannel transport() {
+        return Objects.isNull(this.tlsChannel) ? this.serverChannel : this.tlsChannel;
+    }
+
     /***
      * Get the task to receive and process incoming message from other users in chat room
      * @return The thread to perform the task
@@ -144,13 +188,44 @@ public class Client {
     }
 
     /***
-     * Send message to chatroom server
+     * Send message to chatroom server, the part the socket does not take is sent when it becomes writable
      * @param messageBytes byte arrays of message to be sent
      * @throws IOException Errors from sending message to chatroom server
      */
     private void doMessageSend(byte[] messageBytes) throws IOException {
-        ByteBuffer buffer = ByteBuffer.wrap(messageBytes);
-        this.serverChannel.write(buffer);
+        synchronized (this.pendingMessages) {
+            this.pendingMessages.add(ByteBuffer.wrap(messageBytes));
+            writePendingMessages();
+        }
+    }
+
+    /***
+     * Write queued messages in order, register OP_WRITE if the socket cannot take them all
+     * and stop waiting for it once everything is written
+     * @throws IOException Errors from sending message to chatroom server
+     */
+    private void writePendingMessages() throws IOException {
+        synchronized (this.pendingMessages) {
+            SelectionKey key = this.serverChannel.keyFor(this.selector);
+            // Encrypted bytes left from the last write must be sent first, flush keeps OP_WRITE if it fails
+            if (Objects.nonNull(this.tlsChannel) && !this.tlsChannel.flush()) {
+                return;
+            }
+            while (!this.pendingMessages.isEmpty()) {
+                ByteBuffer buffer = this.pendingMessages.peek();
+                transport().write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                this.pendingMessages.poll();
+            }
+            if (Objects.nonNull(this.tlsChannel)) {
+                this.tlsChannel.clearWriteInterest();
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
     }
 
     private String wrapMessageToPresent(Message message) {
@@ -176,11 +251,23 @@ public class Client {
                     while(itr.hasNext()){
                         SelectionKey key = itr.next();
                         itr.remove();
+                        // Send the rest of queued messages once the socket is writable
+                        if (key.isWritable()) {
+                            writePendingMessages();
+                        }
                         // Receive and process new message from other users in chatroom
                         if (key.isReadable()) {
-                            SocketChannel serverChannel = (SocketChannel) key.channel();
                             ByteArrayOutputStream outputStream = MessageUtils
-                                    .readMessageFromChannel(serverChannel, BUFFER_SIZE);
+                                    .readMessageFromChannel(transport(), BUFFER_SIZE);
+                            if (Objects.isNull(outputStream)) {
+                                System.out.println("The chatroom server has closed the connection");
+                                key.cancel();
+                                return;
+                            }
+                            // Records such as TLS session tickets carry no message
+                            if (outputStream.size() == 0) {
+                                continue;
+                            }
                             Message message = MessageUtils.deserializeMessage(outputStream);
                             // If the user was not registered before, check if it is the authentication message ack
                             if(!isRegistered){
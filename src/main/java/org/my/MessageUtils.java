@@ -6,7 +6,7 @@ package org.my;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * @author MY_c
@@ -66,20 +66,23 @@ public class MessageUtils {
     }
 
     /***
-     *
-     * @param channel
-     * @param bufferSize
-     * @return
+     * Read all bytes available in channel
+     * @param channel The channel to read
+     * @param bufferSize read buffer size
+     * @return the bytes read, or null if the channel has reached end of stream
      * @throws IOException
      */
-    public static ByteArrayOutputStream readMessageFromChannel(SocketChannel channel, int bufferSize) throws IOException {
+    public static ByteArrayOutputStream readMessageFromChannel(ReadableByteChannel channel, int bufferSize) throws IOException {
         ByteBuffer readBuffer = ByteBuffer.allocate(bufferSize);
         int bytesRead = channel.read(readBuffer);
+        if(bytesRead < 0){
+            return null;
+        }
         // ByteArrayOutputStream.write(byte[]) will grow size if needed
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         while(bytesRead > 0){
             readBuffer.flip();
-            outputStream.write(readBuffer.array());
+            outputStream.write(readBuffer.array(), 0, readBuffer.limit());
             readBuffer.clear();
             bytesRead = channel.read(readBuffer);
         }
@@ -0,0 +1,576 @@
+/**
+ * Alipay.com Inc.
+ * Copyright (c) 2004-2023 All Rights Reserved
+ */
+package org.my;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TLS channel on top of a non-blocking socket channel, driven by SSLEngine.
+ * It has the same read/write semantics as SocketChannel so the chatroom can use it in place
+ * of the plain channel once the handshake is complete:
+ * <ul>
+ *     <li>read returns 0 if no complete TLS record has arrived yet, -1 on end of stream</li>
+ *     <li>write returns 0 if encrypted bytes from an earlier write are still waiting for the socket</li>
+ * </ul>
+ * Network buffers are taken from {@link BufferPool}. Delegated handshake tasks (certificate
+ * verification, key exchange) are run on a separate bounded executor, the selection key is woken up again
+ * when they finish. If the executor is full the handshake fails, the connection should be closed
+ * @author MY_c
+ * @version $Id: TlsChannel.java, v 0.1 2026-10-19-10:35 am
+ */
+public class TlsChannel implements ByteChannel {
+
+    /*** Threads for delegated handshake tasks **/
+    private static final int HANDSHAKE_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /*** Delegated handshake tasks waiting for a thread, more than this are rejected **/
+    private static final int HANDSHAKE_QUEUE_SIZE = 256;
+
+    /*** Executor for delegated handshake tasks, keep them off the selector thread **/
+    private static final ExecutorService HANDSHAKE_EXECUTOR = createHandshakeExecutor();
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /*** The underlying socket channel **/
+    private final SocketChannel channel;
+
+    /*** SSL engine of this connection **/
+    private final SSLEngine engine;
+
+    /*** Buffer pool **/
+    private final BufferPool bufferPool = BufferPool.getInstance();
+
+    /*** Encrypted bytes read from socket, kept in fill mode **/
+    private ByteBuffer netIn;
+
+    /*** Encrypted bytes waiting to be written to socket, kept in fill mode **/
+    private ByteBuffer netOut;
+
+    /*** Decrypted bytes not yet handed to reader, kept in fill mode **/
+    private ByteBuffer appIn;
+
+    /*** Selection key of the socket channel, null when used in blocking mode **/
+    private volatile SelectionKey key;
+
+    private volatile boolean handshakeComplete = false;
+
+    private volatile boolean tasksRunning = false;
+
+    /*** Failure from delegated tasks, thrown on the next handshake step **/
+    private volatile Exception taskFailure;
+
+    /*** Creation time, used to find handshakes that never finish **/
+    private final long createTime = System.currentTimeMillis();
+
+    private final Object readLock = new Object();
+
+    private final Object writeLock = new Object();
+
+    /***
+     * Create a server side TLS channel for an accepted connection
+     * @param channel accepted socket channel
+     * @param context server SSLContext
+     * @return TLS channel
+     * @throws IOException Errors from starting handshake
+     */
+    public static TlsChannel server(SocketChannel channel, SSLContext context) throws IOException {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsChannel(channel, engine);
+    }
+
+    /***
+     * Create a client side TLS channel. The peer host and port are given to the engine
+     * so that a cached session for the same server can be resumed, and the server certificate
+     * is checked against the host name
+     * @param channel connected socket channel
+     * @param context client SSLContext
+     * @param host server host
+     * @param port server port
+     * @return TLS channel
+     * @throws IOException Errors from starting handshake
+     */
+    public static TlsChannel client(SocketChannel channel, SSLContext context, String host, int port) throws IOException {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return new TlsChannel(channel, engine);
+    }
+
+    public TlsChannel(SocketChannel channel, SSLEngine engine) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        try {
+            this.netIn = this.bufferPool.acquire(packetSize);
+            this.netOut = this.bufferPool.acquire(packetSize);
+            this.appIn = this.bufferPool.acquire(engine.getSession().getApplicationBufferSize());
+            this.engine.beginHandshake();
+        } catch (IOException e) {
+            this.bufferPool.release(this.netIn);
+            this.bufferPool.release(this.netOut);
+            this.bufferPool.release(this.appIn);
+            throw e;
+        }
+    }
+
+    /***
+     * Register the underlying socket channel, the key is used to resume the handshake
+     * after delegated tasks and to wait for the socket to become writable
+     * @param selector selector
+     * @param ops interest set
+     * @return selection key
+     * @throws ClosedChannelException Channel is closed
+     */
+    public SelectionKey register(Selector selector, int ops) throws ClosedChannelException {
+        this.key = this.channel.register(selector, ops);
+        return this.key;
+    }
+
+    public boolean isHandshakeComplete() {
+        return handshakeComplete;
+    }
+
+    /***
+     * Check if the handshake has not completed within the given time, a peer can hold a connection
+     * and its buffers forever by never finishing it
+     * @param timeoutMillis time allowed for the handshake
+     * @return true if the connection should be closed
+     */
+    public boolean isHandshakeExpired(long timeoutMillis) {
+        return !this.handshakeComplete && System.currentTimeMillis() - this.createTime > timeoutMillis;
+    }
+
+    /***
+     * Check if there are bytes received but not yet returned by read, the selector
+     * will not report them as readable again
+     * @return true if read should be called without waiting for OP_READ
+     */
+    public boolean hasBufferedInput() {
+        synchronized (this.readLock) {
+            return this.netIn.position() > 0 || this.appIn.position() > 0;
+        }
+    }
+
+    /***
+     * Check if there are encrypted bytes waiting for the socket
+     * @return true if flush should be called when the socket is writable
+     */
+    public boolean hasPendingOutput() {
+        synchronized (this.writeLock) {
+            return this.netOut.position() > 0;
+        }
+    }
+
+    /***
+     * Stop waiting for OP_WRITE if no encrypted bytes are left. Only the OP_WRITE bit is cleared and
+     * it is done under the write lock, so the OP_WRITE registered by a concurrent write is kept
+     * @return true if OP_WRITE has been cleared
+     */
+    public boolean clearWriteInterest() {
+        synchronized (this.writeLock) {
+            if (this.netOut.position() > 0) {
+                return false;
+            }
+            setInterest(interestOps() & ~SelectionKey.OP_WRITE);
+            return true;
+        }
+    }
+
+    /***
+     * Make progress on the handshake without blocking. Call it whenever the socket is readable
+     * or writable until it returns true
+     * @return true if the handshake is complete
+     * @throws IOException Errors from handshake
+     */
+    public boolean handshake() throws IOException {
+        if (this.handshakeComplete) {
+            return true;
+        }
+        checkTaskFailure();
+        if (this.tasksRunning) {
+            return false;
+        }
+        synchronized (this.writeLock) {
+            if (!flush()) {
+                setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return false;
+            }
+        }
+        while (true) {
+            switch (this.engine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    synchronized (this.writeLock) {
+                        SSLEngineResult result = wrap(EMPTY);
+                        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new SSLException("SSL engine closed during handshake");
+                        }
+                        if (!flush()) {
+                            setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            return false;
+                        }
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    if (!unwrapForHandshake()) {
+                        setInterest(SelectionKey.OP_READ);
+                        return false;
+                    }
+                    break;
+                case NEED_TASK:
+                    startDelegatedTasks();
+                    if (this.tasksRunning) {
+                        return false;
+                    }
+                    break;
+                default:
+                    // FINISHED or NOT_HANDSHAKING
+                    this.handshakeComplete = true;
+                    setInterest(SelectionKey.OP_READ);
+                    return true;
+            }
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (this.readLock) {
+            checkTaskFailure();
+            if (this.appIn.position() == 0) {
+                while (true) {
+                    if (this.tasksRunning) {
+                        return 0;
+                    }
+                    SSLEngineResult result = unwrap();
+                    processPostHandshake();
+                    if (this.appIn.position() > 0) {
+                        break;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        return -1;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        int bytesRead = this.channel.read(this.netIn);
+                        if (bytesRead < 0) {
+                            closeInboundQuietly();
+                            return -1;
+                        }
+                        if (bytesRead == 0) {
+                            return 0;
+                        }
+                    }
+                }
+            }
+            this.appIn.flip();
+            int length = Math.min(dst.remaining(), this.appIn.remaining());
+            ByteBuffer slice = this.appIn.duplicate();
+            slice.limit(slice.position() + length);
+            dst.put(slice);
+            this.appIn.position(this.appIn.position() + length);
+            this.appIn.compact();
+            return length;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        synchronized (this.writeLock) {
+            if (!flush()) {
+                return 0;
+            }
+            int consumed = 0;
+            while (src.hasRemaining() && !this.tasksRunning) {
+                SSLEngineResult result = wrap(src);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new ClosedChannelException();
+                }
+                consumed += result.bytesConsumed();
+                // The socket buffer is full, flush has registered OP_WRITE
+                if (!flush()) {
+                    break;
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    break;
+                }
+            }
+            return consumed;
+        }
+    }
+
+    /***
+     * Write encrypted bytes left from earlier writes to the socket. After the handshake it also
+     * sends the records the engine asks for, such as key updates, renegotiation and close_notify.
+     * OP_WRITE is registered if the socket cannot take all of them
+     * @return true if nothing is left
+     * @throws IOException Errors from writing to socket
+     */
+    public boolean flush() throws IOException {
+        synchronized (this.writeLock) {
+            checkTaskFailure();
+            while (true) {
+                if (this.netOut.position() > 0) {
+                    this.netOut.flip();
+                    this.channel.write(this.netOut);
+                    this.netOut.compact();
+                    if (this.netOut.position() > 0) {
+                        setInterest(interestOps() | SelectionKey.OP_WRITE);
+                        return false;
+                    }
+                }
+                if (!this.handshakeComplete || this.tasksRunning) {
+                    return true;
+                }
+                SSLEngineResult.HandshakeStatus status = this.engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    SSLEngineResult result = wrap(EMPTY);
+                    if (result.bytesProduced() == 0) {
+                        return true;
+                    }
+                } else if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    startDelegatedTasks();
+                } else {
+                    return true;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    /***
+     * Send close_notify to peer if possible, close the socket and give buffers back to the pool
+     * @throws IOException Errors from closing socket
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this.readLock) {
+            synchronized (this.writeLock) {
+                if (!this.channel.isOpen()) {
+                    return;
+                }
+                try {
+                    this.engine.closeOutbound();
+                    // flush wraps close_notify once the handshake is complete
+                    flush();
+                } catch (IOException e) {
+                    // The peer may have gone already, close the socket anyway
+                } finally {
+                    this.channel.close();
+                    this.bufferPool.release(this.netIn);
+                    this.bufferPool.release(this.netOut);
+                    this.bufferPool.release(this.appIn);
+                }
+            }
+        }
+    }
+
+    /***
+     * Unwrap the buffered network bytes, read from socket when a full record is not there yet
+     * @return false if more bytes from peer are needed
+     * @throws IOException Errors from unwrapping or reading from socket
+     */
+    private boolean unwrapForHandshake() throws IOException {
+        synchronized (this.readLock) {
+            while (true) {
+                SSLEngineResult result = unwrap();
+                switch (result.getStatus()) {
+                    case OK:
+                        return true;
+                    case BUFFER_UNDERFLOW:
+                        int bytesRead = this.channel.read(this.netIn);
+                        if (bytesRead < 0) {
+                            closeInboundQuietly();
+                            throw new EOFException("Connection closed during handshake");
+                        }
+                        if (bytesRead == 0) {
+                            return false;
+                        }
+                        break;
+                    default:
+                        throw new SSLException("SSL engine closed during handshake");
+                }
+            }
+        }
+    }
+
+    /***
+     * Unwrap from netIn into appIn, enlarge the buffers if they are too small
+     * @return result of the last unwrap
+     * @throws SSLException Errors from SSL engine
+     */
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            this.netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = this.engine.unwrap(this.netIn, this.appIn);
+            } finally {
+                this.netIn.compact();
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                this.appIn = enlarge(this.appIn, this.engine.getSession().getApplicationBufferSize());
+                continue;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                && !this.netIn.hasRemaining()) {
+                this.netIn = enlarge(this.netIn, this.engine.getSession().getPacketBufferSize());
+            }
+            return result;
+        }
+    }
+
+    /***
+     * Wrap into netOut, the caller must have flushed netOut before
+     * @param src plain bytes
+     * @return result of the wrap
+     * @throws SSLException Errors from SSL engine
+     */
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            SSLEngineResult result = this.engine.wrap(src, this.netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                this.netOut = enlarge(this.netOut, this.engine.getSession().getPacketBufferSize());
+                continue;
+            }
+            return result;
+        }
+    }
+
+    /***
+     * Replace the buffer with a larger pooled one, keeping its content
+     * @param buffer buffer in fill mode
+     * @param minimumSize size required by SSL engine
+     * @return the new buffer in fill mode
+     * @throws IOException Direct buffer memory is exhausted
+     */
+    private ByteBuffer enlarge(ByteBuffer buffer, int minimumSize) throws IOException {
+        int capacity = Math.max(minimumSize, buffer.position() + minimumSize);
+        ByteBuffer larger = this.bufferPool.acquire(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        this.bufferPool.release(buffer);
+        return larger;
+    }
+
+    /***
+     * TLS 1.3 may send key updates and session tickets after the handshake, and TLS 1.2 may renegotiate.
+     * Tasks and responses go through flush, the same way as during the handshake
+     * @throws IOException Errors from sending the response
+     */
+    private void processPostHandshake() throws IOException {
+        SSLEngineResult.HandshakeStatus status = this.engine.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK
+            || status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            flush();
+        }
+    }
+
+    /***
+     * Run delegated tasks in place when used in blocking mode, otherwise on the handshake executor
+     * @throws SSLException The handshake executor is full
+     */
+    private void startDelegatedTasks() throws SSLException {
+        if (this.key == null) {
+            runDelegatedTasks();
+            return;
+        }
+        submitDelegatedTasks();
+    }
+
+    private void checkTaskFailure() throws SSLException {
+        if (this.taskFailure != null) {
+            throw new SSLException("Delegated handshake task failed", this.taskFailure);
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = this.engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /***
+     * Run delegated tasks on the handshake executor, stop selecting this key until they finish
+     * @throws SSLException The handshake executor is full
+     */
+    private void submitDelegatedTasks() throws SSLException {
+        this.tasksRunning = true;
+        int ops = interestOps();
+        setInterest(0);
+        try {
+            HANDSHAKE_EXECUTOR.execute(() -> {
+                try {
+                    runDelegatedTasks();
+                } catch (Exception e) {
+                    this.taskFailure = e;
+                } finally {
+                    this.tasksRunning = false;
+                    // Wake up the selector so that the handshake continues on the selector thread
+                    setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    this.key.selector().wakeup();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.tasksRunning = false;
+            setInterest(ops);
+            throw new SSLException("Too many TLS handshakes in progress", e);
+        }
+    }
+
+    private static ExecutorService createHandshakeExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(HANDSHAKE_THREADS, HANDSHAKE_THREADS,
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(HANDSHAKE_QUEUE_SIZE), r -> {
+                Thread thread = new Thread(r, "tls-handshake");
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private int interestOps() {
+        SelectionKey selectionKey = this.key;
+        return selectionKey == null || !selectionKey.isValid() ? 0 : selectionKey.interestOps();
+    }
+
+    private void setInterest(int ops) {
+        SelectionKey selectionKey = this.key;
+        if (selectionKey != null && selectionKey.isValid()) {
+            selectionKey.interestOps(ops);
+        }
+    }
+
+    private void closeInboundQuietly() {
+        try {
+            this.engine.closeInbound();
+        } catch (SSLException e) {
+            // The peer did not send close_notify, nothing more can be read anyway
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Alipay.com Inc.
+ * Copyright (c) 2004-2023 All Rights Reserved
+ */
+package org.my;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Build the SSLContext used by chatroom server and client.
+ * TLS is turned on by system properties:
+ * <ul>
+ *     <li>chat.tls.keyStore / chat.tls.keyStorePassword: the server certificate and private key</li>
+ *     <li>chat.tls.trustStore / chat.tls.trustStorePassword: the certificates trusted by client</li>
+ * </ul>
+ * The contexts are cached, sessions negotiated by the same context can be resumed on reconnect
+ * @author MY_c
+ * @version $Id: TlsContextFactory.java, v 0.1 2026-10-19-10:20 am
+ */
+public class TlsContextFactory {
+
+    /*** TLS protocol **/
+    private static final String PROTOCOL = "TLS";
+
+    /*** Key store type, keytool generates PKCS12 by default **/
+    private static final String KEY_STORE_TYPE = "PKCS12";
+
+    /*** Number of sessions cached for resumption **/
+    private static final int SESSION_CACHE_SIZE = 1024;
+
+    /*** Session timeout in seconds **/
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    private static volatile SSLContext serverContext;
+
+    private static volatile SSLContext clientContext;
+
+    /***
+     * Check if the chatroom server has been configured with a key store
+     * @return true if TLS should be used by server
+     */
+    public static boolean isServerTlsEnabled() {
+        return System.getProperty("chat.tls.keyStore") != null;
+    }
+
+    /***
+     * Check if the client has been configured with a trust store
+     * @return true if TLS should be used by client
+     */
+    public static boolean isClientTlsEnabled() {
+        return System.getProperty("chat.tls.trustStore") != null;
+    }
+
+    /***
+     * Get the server context built from chat.tls.keyStore
+     * @return server side SSLContext
+     */
+    public static SSLContext getServerContext() {
+        if (serverContext == null) {
+            synchronized (TlsContextFactory.class) {
+                if (serverContext == null) {
+                    serverContext = createServerContext(System.getProperty("chat.tls.keyStore"),
+                        System.getProperty("chat.tls.keyStorePassword", ""));
+                }
+            }
+        }
+        return serverContext;
+    }
+
+    /***
+     * Get the client context built from chat.tls.trustStore
+     * @return client side SSLContext
+     */
+    public static SSLContext getClientContext() {
+        if (clientContext == null) {
+            synchronized (TlsContextFactory.class) {
+                if (clientContext == null) {
+                    clientContext = createClientContext(System.getProperty("chat.tls.trustStore"),
+                        System.getProperty("chat.tls.trustStorePassword", ""));
+                }
+            }
+        }
+        return clientContext;
+    }
+
+    /***
+     * Create a server context holding the server certificate
+     * @param keyStorePath path of PKCS12 key store
+     * @param password key store password
+     * @return server side SSLContext
+     */
+    public static SSLContext createServerContext(String keyStorePath, String password) {
+        try {
+            KeyStore keyStore = loadKeyStore(keyStorePath, password);
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, password.toCharArray());
+            SSLContext context = SSLContext.getInstance(PROTOCOL);
+            context.init(kmf.getKeyManagers(), null, null);
+            configureSessionCache(context.getServerSessionContext());
+            return context;
+        } catch (IOException | GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /***
+     * Create a client context trusting the certificates in trust store
+     * @param trustStorePath path of PKCS12 trust store
+     * @param password trust store password
+     * @return client side SSLContext
+     */
+    public static SSLContext createClientContext(String trustStorePath, String password) {
+        try {
+            KeyStore trustStore = loadKeyStore(trustStorePath, password);
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(trustStore);
+            SSLContext context = SSLContext.getInstance(PROTOCOL);
+            context.init(null, tmf.getTrustManagers(), null);
+            configureSessionCache(context.getClientSessionContext());
+            return context;
+        } catch (IOException | GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void configureSessionCache(SSLSessionContext sessionContext) {
+        sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessionContext.setSessionTimeout(SESSION_TIMEOUT);
+    }
+
+    private static KeyStore loadKeyStore(String path, String password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(KEY_STORE_TYPE);
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            keyStore.load(in, password.toCharArray());
+        }
+        return keyStore;
+    }
+}
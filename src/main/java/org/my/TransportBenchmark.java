@@ -0,0 +1,327 @@
+/**
+ * Alipay.com Inc.
+ * Copyright (c) 2004-2023 All Rights Reserved
+ */
+package org.my;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compare the plaintext transport with the TLS transport on loopback.
+ * A self-signed certificate is generated with keytool into a temporary key store, which is used
+ * as the server key store and the client trust store. It measures
+ * <ul>
+ *     <li>connection setup: plain TCP, full TLS handshake, resumed TLS handshake</li>
+ *     <li>round trip of serialized chat messages through an echo server</li>
+ * </ul>
+ * Run: java -cp target/classes org.my.TransportBenchmark [connections] [messages]
+ * @author MY_c
+ * @version $Id: TransportBenchmark.java, v 0.1 2026-10-19-2:05 pm
+ */
+public class TransportBenchmark {
+
+    /*** Key store password of the generated certificate **/
+    private static final String STORE_PASSWORD = "changeit";
+
+    private static final String HOST = "localhost";
+
+    /*** Connections per handshake round **/
+    private static final int DEFAULT_CONNECTIONS = 200;
+
+    /*** Messages per round trip round **/
+    private static final int DEFAULT_MESSAGES = 20000;
+
+    /*** Warm up with 1/WARMUP_DIVISOR of the measured count before measuring, let JIT warm up **/
+    private static final int WARMUP_DIVISOR = 4;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONNECTIONS;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MESSAGES;
+
+        Path keyStore = generateSelfSignedKeyStore();
+        try {
+            SSLContext serverContext = TlsContextFactory.createServerContext(keyStore.toString(), STORE_PASSWORD);
+            EchoServer plainServer = EchoServer.start(null);
+            EchoServer tlsServer = EchoServer.start(serverContext);
+
+            SSLContext clientContext = TlsContextFactory.createClientContext(keyStore.toString(), STORE_PASSWORD);
+
+            byte[] payload = createPayload();
+            System.out.println("Serialized chat message: " + payload.length + " bytes");
+
+            // Warm up
+            runConnections(plainServer.port, null, false, connections / WARMUP_DIVISOR);
+            runConnections(tlsServer.port, clientContext, false, connections / WARMUP_DIVISOR);
+            runConnections(tlsServer.port, clientContext, true, connections / WARMUP_DIVISOR);
+            runRoundTrips(plainServer.port, null, payload, messages / WARMUP_DIVISOR);
+            runRoundTrips(tlsServer.port, clientContext, payload, messages / WARMUP_DIVISOR);
+
+            report("Connect plaintext", connections,
+                runConnections(plainServer.port, null, false, connections));
+            report("Connect TLS full handshake", connections,
+                runConnections(tlsServer.port, clientContext, false, connections));
+            report("Connect TLS resumed handshake", connections,
+                runConnections(tlsServer.port, clientContext, true, connections));
+            report("Round trip plaintext", messages,
+                runRoundTrips(plainServer.port, null, payload, messages));
+            report("Round trip TLS", messages,
+                runRoundTrips(tlsServer.port, clientContext, payload, messages));
+        } finally {
+            Files.deleteIfExists(keyStore);
+            Files.deleteIfExists(keyStore.getParent());
+        }
+    }
+
+    /***
+     * Generate a self-signed certificate for localhost with keytool
+     * @return path of the PKCS12 key store
+     * @throws IOException Errors from running keytool
+     * @throws InterruptedException Interrupted while waiting for keytool
+     */
+    private static Path generateSelfSignedKeyStore() throws IOException, InterruptedException {
+        Path keyStore = Files.createTempDirectory("chatroom-tls").resolve("chatroom.p12");
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chatroom",
+            "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=" + HOST,
+            "-ext", "SAN=dns:" + HOST, "-validity", "1", "-storetype", "PKCS12",
+            "-keystore", keyStore.toString(), "-storepass", STORE_PASSWORD, "-keypass", STORE_PASSWORD)
+            .inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("keytool failed with exit code " + process.exitValue());
+        }
+        return keyStore;
+    }
+
+    private static byte[] createPayload() throws IOException {
+        Message message = new Message(new UserInfo("benchmark", "1"), new String(new char[128]).replace('\0', 'x'));
+        message.setMessageType(MessageType.CHAT);
+        return MessageUtils.serialize(message);
+    }
+
+    /***
+     * Open connections one after another, each one sends a single byte and waits for the echo
+     * so that TLS 1.3 session tickets are received before it is closed
+     * @param port server port
+     * @param context client SSLContext, null for plaintext
+     * @param resume true to resume the session cached by the previous connection
+     * @param count number of connections
+     * @return elapsed nanos
+     */
+    private static long runConnections(int port, SSLContext context, boolean resume, int count) throws IOException {
+        ByteBuffer ping = ByteBuffer.allocate(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            try (ByteChannel channel = connect(port, context, resume)) {
+                ping.clear();
+                writeFully(channel, ping);
+                ping.clear();
+                readFully(channel, ping);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /***
+     * Send messages one by one on a single connection and wait for each echo
+     * @param port server port
+     * @param context client SSLContext, null for plaintext
+     * @param payload message bytes
+     * @param count number of messages
+     * @return elapsed nanos
+     */
+    private static long runRoundTrips(int port, SSLContext context, byte[] payload, int count) throws IOException {
+        ByteBuffer out = ByteBuffer.wrap(payload);
+        ByteBuffer in = ByteBuffer.allocate(payload.length);
+        try (ByteChannel channel = connect(port, context, true)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                out.clear();
+                writeFully(channel, out);
+                in.clear();
+                readFully(channel, in);
+            }
+            return System.nanoTime() - start;
+        }
+    }
+
+    /***
+     * Open a blocking connection, TLS handshake runs in place when a context is given.
+     * The client session cache is looked up by peer host and port, an engine created without them
+     * always does a full handshake
+     */
+    private static ByteChannel connect(int port, SSLContext context, boolean resume) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(HOST, port));
+        channel.socket().setTcpNoDelay(true);
+        if (Objects.isNull(context)) {
+            return channel;
+        }
+        TlsChannel tlsChannel;
+        if (resume) {
+            tlsChannel = TlsChannel.client(channel, context, HOST, port);
+        } else {
+            SSLEngine engine = context.createSSLEngine();
+            engine.setUseClientMode(true);
+            tlsChannel = new TlsChannel(channel, engine);
+        }
+        while (!tlsChannel.handshake()) {
+            // Blocking mode, every step makes progress
+        }
+        return tlsChannel;
+    }
+
+    private static void writeFully(ByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (channel instanceof TlsChannel) {
+            while (!((TlsChannel) channel).flush()) {
+                // Spin until the socket takes the rest
+            }
+        }
+    }
+
+    private static void readFully(ByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Echo server closed the connection");
+            }
+        }
+    }
+
+    private static void report(String name, int count, long nanos) {
+        System.out.printf("%-32s %8d ops %10.1f ms %10.1f us/op %12.0f ops/s%n", name, count,
+            nanos / 1e6, nanos / 1e3 / count, count * 1e9 / nanos);
+    }
+
+    /***
+     * A non-blocking echo server, same selector loop as the chatroom server
+     */
+    private static class EchoServer implements Runnable {
+
+        private final Selector selector;
+
+        private final ServerSocketChannel serverChannel;
+
+        private final SSLContext sslContext;
+
+        private final Map<SocketChannel, TlsChannel> tlsChannels = new ConcurrentHashMap<>();
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        private int port;
+
+        private EchoServer(SSLContext sslContext) throws IOException {
+            this.sslContext = sslContext;
+            this.selector = Selector.open();
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.configureBlocking(false);
+        }
+
+        static EchoServer start(SSLContext sslContext) throws IOException {
+            EchoServer server = new EchoServer(sslContext);
+            server.serverChannel.socket().bind(new InetSocketAddress(HOST, 0));
+            server.serverChannel.register(server.selector, SelectionKey.OP_ACCEPT);
+            server.port = server.serverChannel.socket().getLocalPort();
+            Thread thread = new Thread(server, Objects.isNull(sslContext) ? "echo-plain" : "echo-tls");
+            thread.setDaemon(true);
+            thread.start();
+            return server;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    if (this.selector.select() == 0) {
+                        continue;
+                    }
+                    Iterator<SelectionKey> itr = this.selector.selectedKeys().iterator();
+                    while (itr.hasNext()) {
+                        SelectionKey key = itr.next();
+                        itr.remove();
+                        try {
+                            processKey(key);
+                        } catch (IOException e) {
+                            closeQuietly((SocketChannel) key.channel());
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        private void processKey(SelectionKey key) throws IOException {
+            if (key.isAcceptable()) {
+                SocketChannel channel = this.serverChannel.accept();
+                if (Objects.isNull(channel)) {
+                    return;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                if (Objects.isNull(this.sslContext)) {
+                    channel.register(this.selector, SelectionKey.OP_READ);
+                    return;
+                }
+                TlsChannel tlsChannel = TlsChannel.server(channel, this.sslContext);
+                this.tlsChannels.put(channel, tlsChannel);
+                tlsChannel.register(this.selector, SelectionKey.OP_READ);
+                return;
+            }
+            SocketChannel channel = (SocketChannel) key.channel();
+            TlsChannel tlsChannel = this.tlsChannels.get(channel);
+            if (Objects.nonNull(tlsChannel) && !tlsChannel.isHandshakeComplete()) {
+                if (!tlsChannel.handshake() || !tlsChannel.hasBufferedInput()) {
+                    return;
+                }
+            }
+            echo(Objects.isNull(tlsChannel) ? channel : tlsChannel, channel);
+            // The echo is written fully, stop waiting for OP_WRITE
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void echo(ByteChannel transport, SocketChannel channel) throws IOException {
+            int bytesRead;
+            while ((bytesRead = transport.read(this.buffer)) > 0) {
+                this.buffer.flip();
+                writeFully(transport, this.buffer);
+                this.buffer.clear();
+            }
+            if (bytesRead < 0) {
+                closeQuietly(channel);
+            }
+        }
+
+        private void closeQuietly(SocketChannel channel) {
+            try {
+                TlsChannel tlsChannel = this.tlsChannels.remove(channel);
+                if (Objects.nonNull(tlsChannel)) {
+                    tlsChannel.close();
+                } else {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+}